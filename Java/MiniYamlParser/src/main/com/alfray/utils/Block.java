@@ -18,10 +18,15 @@
 
 package com.alfray.utils;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeMap;
 
@@ -32,6 +37,11 @@ public class Block {
     private String mLiteral = null;
     private Map<String, Block> mMapping = null;
     private List<Block> mSequence = null;
+    /** A sequence of numeric literals packed as an int[], long[] or double[]. */
+    private Object mPackedSequence = null;
+    /** Items of a double[] packed sequence which are written as integers, e.g. 0 or 1. */
+    private BitSet mPackedIntegers = null;
+    private int mLine = -1;
 
     public boolean isEmpty() {
         return !isLiteral() && !isMapping() && !isSequence();
@@ -46,7 +56,7 @@ public class Block {
     }
 
     public boolean isSequence() {
-        return mSequence != null;
+        return mSequence != null || mPackedSequence != null;
     }
 
     public String getType() {
@@ -60,10 +70,20 @@ public class Block {
         return "empty";
     }
 
+    Block setLine(int line) {
+        mLine = line;
+        return this;
+    }
+
+    /** Returns the document line where this block starts, or -1 if unknown. */
+    public int getLine() {
+        return mLine;
+    }
+
     // --- Literal container
 
     Block setLiteral(String literal) throws ParserException {
-        if (mSequence != null) {
+        if (isSequence()) {
             throw new ParserException("Block of type 'sequence' can't be converted to type 'literal'");
         } else if (mMapping != null) {
             throw new ParserException("Block of type 'mapping' can't be converted to type 'literal'");
@@ -92,7 +112,7 @@ public class Block {
     Block setKeyValue(String key, Block value) throws ParserException {
         if (mLiteral != null) {
             throw new ParserException("Block of type 'literal' can't be converted to type 'mapping'");
-        } else if (mSequence != null) {
+        } else if (isSequence()) {
             throw new ParserException("Block of type 'sequence' can't be converted to type 'mapping'");
         }
         if (mMapping == null) {
@@ -157,7 +177,11 @@ public class Block {
         } else if (mMapping != null) {
             throw new ParserException("Block of type 'mapping' can't be converted to type 'sequence'");
         }
-        if (mSequence == null) {
+        if (mPackedSequence != null) {
+            mSequence = unpackSequence();
+            mPackedSequence = null;
+            mPackedIntegers = null;
+        } else if (mSequence == null) {
             mSequence = new ArrayList<Block>();
         }
         mSequence.add(block);
@@ -165,10 +189,457 @@ public class Block {
         return this;
     }
 
+    /**
+     * Returns the sequence items.
+     * For a packed numeric sequence, new literal blocks are created at each call.
+     */
     public List<Block> getSequence() {
+        if (mPackedSequence != null) {
+            return Collections.unmodifiableList(unpackSequence());
+        }
         return Collections.unmodifiableList(mSequence);
     }
 
+    int getSequenceSize() {
+        if (mPackedSequence instanceof int[]) {
+            return ((int[]) mPackedSequence).length;
+        } else if (mPackedSequence instanceof long[]) {
+            return ((long[]) mPackedSequence).length;
+        } else if (mPackedSequence instanceof double[]) {
+            return ((double[]) mPackedSequence).length;
+        }
+        return mSequence.size();
+    }
+
+    Block getSequenceItem(int index) {
+        if (mPackedSequence != null) {
+            Block item = new Block().setLine(mLine);
+            item.mLiteral = getPackedString(index);
+            return item;
+        }
+        return mSequence.get(index);
+    }
+
+    // --- Packed numeric sequence
+
+    /**
+     * Packs a sequence made only of numeric literals into an int[], long[] or double[],
+     * trying them in that order. A sequence is only packed if each literal is exactly the
+     * text that {@link Integer#toString}, {@link Long#toString} or {@link Double#toString}
+     * gives back for its value, so that unpacking yields the same literals. A double[] can
+     * also hold integer literals such as 0 or 1, as long as they are exact doubles.
+     *
+     * @return True if the sequence was packed.
+     */
+    boolean packNumbers() {
+        if (mSequence == null) {
+            return false;
+        }
+        for (int i = 0, n = mSequence.size(); i < n; i++) {
+            if (!mSequence.get(i).isLiteral()) {
+                return false;
+            }
+        }
+
+        Object packed = packInts();
+        if (packed == null) {
+            packed = packLongs();
+        }
+        if (packed == null) {
+            packed = packDoubles();
+        }
+        if (packed != null) {
+            mPackedSequence = packed;
+            mSequence = null;
+            return true;
+        }
+        return false;
+    }
+
+    /** Returns true if this sequence is stored as a packed numeric array. */
+    public boolean isPackedSequence() {
+        return mPackedSequence != null;
+    }
+
+    private int[] packInts() {
+        int n = mSequence.size();
+        int[] values = new int[n];
+        try {
+            for (int i = 0; i < n; i++) {
+                String s = mSequence.get(i).getString();
+                values[i] = Integer.parseInt(s);
+                if (!s.equals(Integer.toString(values[i]))) {
+                    return null;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return values;
+    }
+
+    private long[] packLongs() {
+        int n = mSequence.size();
+        long[] values = new long[n];
+        try {
+            for (int i = 0; i < n; i++) {
+                String s = mSequence.get(i).getString();
+                values[i] = Long.parseLong(s);
+                if (!s.equals(Long.toString(values[i]))) {
+                    return null;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return values;
+    }
+
+    private double[] packDoubles() {
+        int n = mSequence.size();
+        double[] values = new double[n];
+        BitSet integers = null;
+        try {
+            for (int i = 0; i < n; i++) {
+                String s = mSequence.get(i).getString();
+                values[i] = Double.parseDouble(s);
+                if (s.equals(Double.toString(values[i]))) {
+                    continue;
+                }
+                long value = Long.parseLong(s);
+                if (!s.equals(Long.toString(value)) || Math.abs(value) > (1L << 53)) {
+                    return null;
+                }
+                if (integers == null) {
+                    integers = new BitSet(n);
+                }
+                integers.set(i);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        mPackedIntegers = integers;
+        return values;
+    }
+
+    private String getPackedString(int index) {
+        if (mPackedSequence instanceof int[]) {
+            return Integer.toString(((int[]) mPackedSequence)[index]);
+        } else if (mPackedSequence instanceof long[]) {
+            return Long.toString(((long[]) mPackedSequence)[index]);
+        }
+        double value = ((double[]) mPackedSequence)[index];
+        if (mPackedIntegers != null && mPackedIntegers.get(index)) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private List<Block> unpackSequence() {
+        int n = getSequenceSize();
+        List<Block> sequence = new ArrayList<Block>(n);
+        for (int i = 0; i < n; i++) {
+            sequence.add(getSequenceItem(i));
+        }
+        return sequence;
+    }
+
+    /**
+     * Returns a copy of the sequence values as an int array.
+     * This is a single array copy when the sequence is packed as ints.
+     * Items are otherwise parsed like {@link #getInt()} does, whether packed or not.
+     */
+    public int[] getIntArray() throws ParserException, NumberFormatException {
+        if (mPackedSequence instanceof int[]) {
+            return ((int[]) mPackedSequence).clone();
+        }
+        if (mPackedSequence == null) {
+            checkSequenceOfLiterals();
+        }
+        int n = getSequenceSize();
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = Integer.parseInt(getSequenceString(i));
+        }
+        return values;
+    }
+
+    /**
+     * Returns a copy of the sequence values as a long array.
+     * This is a single array copy when the sequence is packed as longs.
+     * Items are otherwise parsed with {@link Long#parseLong}, whether packed or not.
+     */
+    public long[] getLongArray() throws ParserException, NumberFormatException {
+        if (mPackedSequence instanceof long[]) {
+            return ((long[]) mPackedSequence).clone();
+        }
+        if (mPackedSequence instanceof int[]) {
+            int[] packed = (int[]) mPackedSequence;
+            long[] values = new long[packed.length];
+            for (int i = 0; i < packed.length; i++) {
+                values[i] = packed[i];
+            }
+            return values;
+        }
+        if (mPackedSequence == null) {
+            checkSequenceOfLiterals();
+        }
+        int n = getSequenceSize();
+        long[] values = new long[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = Long.parseLong(getSequenceString(i));
+        }
+        return values;
+    }
+
+    /**
+     * Returns a copy of the sequence values as a double array.
+     * This is a single array copy when the sequence is packed as doubles.
+     */
+    public double[] getDoubleArray() throws ParserException, NumberFormatException {
+        if (mPackedSequence instanceof double[]) {
+            return ((double[]) mPackedSequence).clone();
+        }
+        if (mPackedSequence instanceof int[]) {
+            int[] packed = (int[]) mPackedSequence;
+            double[] values = new double[packed.length];
+            for (int i = 0; i < packed.length; i++) {
+                values[i] = packed[i];
+            }
+            return values;
+        }
+        if (mPackedSequence instanceof long[]) {
+            long[] packed = (long[]) mPackedSequence;
+            double[] values = new double[packed.length];
+            for (int i = 0; i < packed.length; i++) {
+                values[i] = packed[i];
+            }
+            return values;
+        }
+        checkSequenceOfLiterals();
+        int n = getSequenceSize();
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = Double.parseDouble(getSequenceString(i));
+        }
+        return values;
+    }
+
+    /** Returns a packed sequence value as a double. */
+    double getPackedDouble(int index) {
+        if (mPackedSequence instanceof int[]) {
+            return ((int[]) mPackedSequence)[index];
+        } else if (mPackedSequence instanceof long[]) {
+            return ((long[]) mPackedSequence)[index];
+        }
+        return ((double[]) mPackedSequence)[index];
+    }
+
+    /** Returns true if a packed sequence value is one that {@link #getInt()} accepts. */
+    boolean isPackedInt(int index) {
+        if (mPackedSequence instanceof int[]) {
+            return true;
+        } else if (mPackedSequence instanceof long[]) {
+            long value = ((long[]) mPackedSequence)[index];
+            return value == (int) value;
+        } else if (mPackedIntegers != null && mPackedIntegers.get(index)) {
+            double value = ((double[]) mPackedSequence)[index];
+            return value == (int) value;
+        }
+        return false;
+    }
+
+    /** Returns the literal of a sequence item, without creating a block for packed sequences. */
+    String getSequenceString(int index) {
+        if (mPackedSequence != null) {
+            return getPackedString(index);
+        }
+        return mSequence.get(index).getString();
+    }
+
+    private void checkSequenceOfLiterals() throws ParserException {
+        if (mSequence == null) {
+            throw new ParserException(
+                        String.format("Block is of type '%s', not sequence", getType()));
+        }
+        for (int i = 0, n = mSequence.size(); i < n; i++) {
+            Block item = mSequence.get(i);
+            if (!item.isLiteral()) {
+                throw new ParserException(item.getLine(),
+                            String.format("Sequence item %d is of type '%s', not literal",
+                                            i, item.getType()));
+            }
+        }
+    }
+
+    // --- Merge
+
+    /** How {@link #merge} combines a sequence from the base with one from the overlay. */
+    public enum SequenceMerge {
+        /** The overlay sequence replaces the base sequence. */
+        REPLACE,
+        /** The overlay sequence elements are appended after the base sequence elements. */
+        APPEND
+    }
+
+    /**
+     * Returns a new block which is this block with the given overlay applied on top of it.
+     * <p/>
+     * Mapping keys are merged recursively, sequences are replaced or appended depending on
+     * the policy and literals are replaced. When types differ, the overlay wins. An empty
+     * overlay leaves the base unchanged.
+     * <p/>
+     * Neither block is modified. Subtrees which the overlay does not change are shared by
+     * reference with the base, and subtrees only present in the overlay are shared with the
+     * overlay. Merged mappings are not copied: they hold the merged overlay keys in front of
+     * the base mapping, so merging costs O(k log n) for an overlay of k keys. The exception
+     * is {@link SequenceMerge#APPEND}, which copies both sequences it appends.
+     * <p/>
+     * Each merge adds a layer to the mappings it touches, so key lookups in a block merged
+     * m times cost up to m map lookups.
+     */
+    public Block merge(Block overlay, SequenceMerge policy) {
+        if (overlay == null || overlay.isEmpty()) {
+            return this;
+        } else if (overlay == this && policy == SequenceMerge.REPLACE) {
+            // Appending sequences onto themselves still needs to go through the merge.
+            return this;
+        }
+
+        if (mMapping != null && overlay.mMapping != null) {
+            TreeMap<String, Block> top = new TreeMap<String, Block>();
+            for (Map.Entry<String, Block> entry : overlay.mMapping.entrySet()) {
+                Block base = mMapping.get(entry.getKey());
+                Block value = entry.getValue();
+                top.put(entry.getKey(), base == null ? value : base.merge(value, policy));
+            }
+            Block result = new Block().setLine(mLine);
+            result.mMapping = new OverlayMap(mMapping, top);
+            return result;
+        }
+
+        if (isSequence() && overlay.isSequence() && policy == SequenceMerge.APPEND) {
+            Block result = new Block().setLine(mLine);
+            result.mSequence = new ArrayList<Block>(getSequenceSize() + overlay.getSequenceSize());
+            result.mSequence.addAll(mSequence != null ? mSequence : unpackSequence());
+            result.mSequence.addAll(overlay.mSequence != null ? overlay.mSequence : overlay.unpackSequence());
+            if (mPackedSequence != null && overlay.mPackedSequence != null) {
+                result.packNumbers();
+            }
+            return result;
+        }
+
+        return overlay;
+    }
+
+    /**
+     * A read-only mapping made of the merged overlay keys in front of a shared base mapping.
+     * Iterates in key order like a {@link TreeMap}, which both layers are expected to do.
+     */
+    private static final class OverlayMap extends AbstractMap<String, Block> {
+        private final Map<String, Block> mBase;
+        private final TreeMap<String, Block> mTop;
+        private final int mSize;
+
+        public OverlayMap(Map<String, Block> base, TreeMap<String, Block> top) {
+            mBase = base;
+            mTop = top;
+            int size = base.size();
+            for (String key : top.keySet()) {
+                if (!base.containsKey(key)) {
+                    size++;
+                }
+            }
+            mSize = size;
+        }
+
+        @Override
+        public Block get(Object key) {
+            Block value = mTop.get(key);
+            return value != null ? value : mBase.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return mTop.containsKey(key) || mBase.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+
+        @Override
+        public Set<Map.Entry<String, Block>> entrySet() {
+            return new AbstractSet<Map.Entry<String, Block>>() {
+                @Override
+                public int size() {
+                    return mSize;
+                }
+
+                @Override
+                public Iterator<Map.Entry<String, Block>> iterator() {
+                    return new MergeIterator(mTop.entrySet().iterator(), mBase.entrySet().iterator());
+                }
+            };
+        }
+    }
+
+    /** Merges two key-ordered entry iterators; the top entry wins when both have the same key. */
+    private static final class MergeIterator implements Iterator<Map.Entry<String, Block>> {
+        private final Iterator<Map.Entry<String, Block>> mTop;
+        private final Iterator<Map.Entry<String, Block>> mBase;
+        private Map.Entry<String, Block> mNextTop;
+        private Map.Entry<String, Block> mNextBase;
+
+        public MergeIterator(Iterator<Map.Entry<String, Block>> top,
+                             Iterator<Map.Entry<String, Block>> base) {
+            mTop = top;
+            mBase = base;
+            mNextTop = top.hasNext() ? top.next() : null;
+            mNextBase = base.hasNext() ? base.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mNextTop != null || mNextBase != null;
+        }
+
+        @Override
+        public Map.Entry<String, Block> next() {
+            if (mNextTop == null && mNextBase == null) {
+                throw new NoSuchElementException();
+            }
+            int cmp;
+            if (mNextTop == null) {
+                cmp = 1;
+            } else if (mNextBase == null) {
+                cmp = -1;
+            } else {
+                cmp = mNextTop.getKey().compareTo(mNextBase.getKey());
+            }
+
+            Map.Entry<String, Block> entry;
+            if (cmp <= 0) {
+                entry = mNextTop;
+                mNextTop = mTop.hasNext() ? mTop.next() : null;
+                if (cmp == 0) {
+                    // The top entry replaces the base one.
+                    mNextBase = mBase.hasNext() ? mBase.next() : null;
+                }
+            } else {
+                entry = mNextBase;
+                mNextBase = mBase.hasNext() ? mBase.next() : null;
+            }
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
     // --
 
     /** Returns a Block representation suitable for debugging. */
@@ -180,8 +651,8 @@ public class Block {
         } else if (mMapping != null) {
             return mMapping.toString();
 
-        } else if (mSequence != null) {
-            return mSequence.toString();
+        } else if (isSequence()) {
+            return getSequence().toString();
         }
 
         return "<empty container>";
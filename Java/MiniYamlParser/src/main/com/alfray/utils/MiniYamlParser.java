@@ -18,7 +18,6 @@
 
 package com.alfray.utils;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.util.regex.Matcher;
@@ -65,80 +64,201 @@ import java.util.regex.Pattern;
  * <li> A key can be anything except whitespace and the colon character (:).
  * <li> No reflection or Java bean support. Readers uses the underlying list/maps to retrieve values.
  * </ul>
+ * A parser instance can be reused for any number of documents. It keeps its read and line
+ * buffers between calls to {@link #parse} so that parsing mostly allocates the resulting
+ * {@link Block} tree. An instance is not thread-safe; use {@link #getThreadParser()} to
+ * get a parser owned by the current thread.
  */
 public final class MiniYamlParser {
 
+    /** Scratch buffers larger than this are not kept between documents. */
+    private static final int MAX_RETAINED_CHARS = 64 * 1024;
+
+    private static final ThreadLocal<MiniYamlParser> sThreadParser =
+        new ThreadLocal<MiniYamlParser>() {
+            @Override
+            protected MiniYamlParser initialValue() {
+                return new MiniYamlParser();
+            }
+        };
+
+    private final Input mInput = new Input();
+    private final Matcher mSeqOrKey = RE_SEQ_OR_KEY.matcher("");
+    private final Matcher mSeqAndKey = RE_SEQ_AND_KEY.matcher("");
+    private final Matcher mIndent = RE_INDENT.matcher("");
+    private StringBuilder mLiteralBuilder = new StringBuilder();
+    private boolean mPackNumbers = false;
+
     public MiniYamlParser() {
     }
 
+    /**
+     * Returns the parser instance of the current thread, {@link #reset} to its default options.
+     * The instance must only be used by the calling thread.
+     */
+    public static MiniYamlParser getThreadParser() {
+        MiniYamlParser parser = sThreadParser.get();
+        parser.reset();
+        return parser;
+    }
+
+    /** Restores the default options. */
+    public MiniYamlParser reset() {
+        mPackNumbers = false;
+        return this;
+    }
+
+    /**
+     * When enabled, sequences made only of numeric literals are stored as packed
+     * int[], long[] or double[] arrays, see {@link Block#getIntArray()},
+     * {@link Block#getLongArray()} and {@link Block#getDoubleArray()}. Default is false.
+     * <p/>
+     * Caveats of packed sequences:
+     * <ul>
+     * <li> A sequence is only packed if each literal reads back as the same text, so that
+     *      {@link Block#getSequence()} still returns the original literals. Integers such as
+     *      0 or 1 can be mixed with decimals such as 0.5, yet literals written differently
+     *      from {@link Double#toString}, e.g. 1.50, 1e3 or 0.00001, keep the sequence unpacked.
+     * <li> {@link Block#getSequence()} creates new item blocks at each call.
+     * <li> Items don't keep their own line: their {@link Block#getLine()} and the
+     *      {@link Schema} violations they cause report the line of the sequence.
+     * </ul>
+     */
+    public MiniYamlParser setPackNumericSequences(boolean packNumbers) {
+        mPackNumbers = packNumbers;
+        return this;
+    }
+
     private static final Pattern RE_EMPTY_LINE = Pattern.compile("^\\s*(?:#.*)?$");
 
     static class Input {
-        private final BufferedReader mReader;
-        private String mUnreadLine = null;
-        private int mLineCount = 0;
-
-        public Input(BufferedReader reader) {
+        private final char[] mBuffer = new char[8192];
+        private final Matcher mEmptyLine = RE_EMPTY_LINE.matcher("");
+        private StringBuilder mLine = new StringBuilder();
+        private Reader mReader;
+        private int mPos;
+        private int mEnd;
+        private boolean mSkipLF;
+        private boolean mUnread;
+        private int mLineCount;
+
+        /** Starts reading from a new reader, or releases the current one if null. */
+        public void reset(Reader reader) {
             mReader = reader;
+            mPos = 0;
+            mEnd = 0;
+            mSkipLF = false;
+            mUnread = false;
+            mLineCount = 0;
+            if (mLine.capacity() > MAX_RETAINED_CHARS) {
+                mLine = new StringBuilder();
+            }
+            mLine.setLength(0);
         }
 
-        /** Returns a "clean" document line, ignoring empty and comment lines. */
-        public String readLine() throws IOException {
-            String line = mUnreadLine;
-            if (line != null) {
-                mUnreadLine = null;
-                if (!RE_EMPTY_LINE.matcher(line).matches()) {
-                    return line;
+        /**
+         * Returns a "clean" document line, ignoring empty and comment lines.
+         * The line buffer is reused by the next read.
+         */
+        public StringBuilder readLine() throws IOException {
+            if (mUnread) {
+                mUnread = false;
+                if (!mEmptyLine.reset(mLine).matches()) {
+                    return mLine;
                 }
             }
 
-            while ((line = mReader.readLine()) != null) {
+            while (readRawLine()) {
                 mLineCount++;
-                if (!RE_EMPTY_LINE.matcher(line).matches()) {
-                    break;
+                if (!mEmptyLine.reset(mLine).matches()) {
+                    return mLine;
                 }
             }
 
-            return line;
+            return null;
         }
 
-        /** Returns a literal line, including empty and comment lines. */
-        public String readLiteralLine() throws IOException {
-            String line = mUnreadLine;
-            if (line != null) {
-                mUnreadLine = null;
-                return line;
+        /**
+         * Returns a literal line, including empty and comment lines.
+         * The line buffer is reused by the next read.
+         */
+        public StringBuilder readLiteralLine() throws IOException {
+            if (mUnread) {
+                mUnread = false;
+                return mLine;
             }
 
-            line = mReader.readLine();
-            if (line != null) {
+            if (readRawLine()) {
                 mLineCount++;
+                return mLine;
+            }
+            return null;
+        }
+
+        /**
+         * Reads the next line in the line buffer. Accepted line breaks are LF, CR or CR+LF.
+         *
+         * @return False if the end of the input was reached.
+         */
+        private boolean readRawLine() throws IOException {
+            mLine.setLength(0);
+            boolean found = false;
+            while (true) {
+                if (mPos >= mEnd) {
+                    int n = mReader.read(mBuffer, 0, mBuffer.length);
+                    if (n < 0) {
+                        return found;
+                    }
+                    mPos = 0;
+                    mEnd = n;
+                    continue;
+                }
+
+                if (mSkipLF) {
+                    mSkipLF = false;
+                    if (mBuffer[mPos] == '\n') {
+                        mPos++;
+                        continue;
+                    }
+                }
+
+                found = true;
+                int start = mPos;
+                while (mPos < mEnd && mBuffer[mPos] != '\n' && mBuffer[mPos] != '\r') {
+                    mPos++;
+                }
+                mLine.append(mBuffer, start, mPos - start);
+
+                if (mPos < mEnd) {
+                    mSkipLF = mBuffer[mPos++] == '\r';
+                    return true;
+                }
             }
-            return line;
         }
 
         public int getLineCount() {
             return mLineCount;
         }
 
-        public void unreadLine(String line) throws ParserException {
-            if (mUnreadLine != null) {
+        /** Unreads the line last returned by a read, if any. */
+        public void unreadLine(CharSequence line) throws ParserException {
+            if (mUnread) {
                 throw new ParserException(mLineCount, "Internal Error: can't only unread 1 line");
             }
-            mUnreadLine = line;
+            assert line == null || line == mLine;
+            mUnread = line != null;
         }
     }
 
     public Block parse(Reader reader)
                      throws IOException, ParserException {
-        BufferedReader br = new BufferedReader(reader);
+        Input input = mInput;
+        input.reset(reader);
         try {
-            Input input = new Input(br);
-
             // Skip lines till we match the beginning of a document.
-            String line;
+            CharSequence line;
             while ((line = input.readLine()) != null) {
-                if ("---".equals(line)) {
+                if (isMarker(line, "---")) {
                     return parseDocument(input);
                 }
             }
@@ -147,30 +267,41 @@ public final class MiniYamlParser {
                             "Document marker not found (aka c-directives-end). " +
                             "Tip: start your document with '---'.");
         } finally {
-            try { br.close(); } catch (IOException ignore) {}
+            input.reset(null);
+            if (mLiteralBuilder.capacity() > MAX_RETAINED_CHARS) {
+                mLiteralBuilder = new StringBuilder();
+            }
+            try { reader.close(); } catch (IOException ignore) {}
         }
     }
 
+    private static boolean isMarker(CharSequence line, String marker) {
+        return line != null && marker.contentEquals(line);
+    }
+
     // Indent whitespace.                                      1=indent
     private static final Pattern RE_INDENT = Pattern.compile("^(\\s*)[^\\s].*$");
 
     private Block parseDocument(Input input)
                       throws IOException, ParserException {
-        Block doc = new Block();
+        Block doc = new Block().setLine(input.getLineCount());
 
-        String indent = "";
+        int indent = 0;
 
-        String line = input.readLine();
+        CharSequence line = input.readLine();
         input.unreadLine(line);
-        Matcher m = RE_INDENT.matcher(line);
+        Matcher m = mIndent.reset(line);
         if (m.matches()) {
-            indent = m.group(1);
+            indent = m.end(1);
         }
 
         parseIntoContainer(input, doc, indent);
+        if (mPackNumbers) {
+            doc.packNumbers();
+        }
 
         line = input.readLine();
-        if (!"...".equals(line)) {
+        if (!isMarker(line, "...")) {
             // end of document marker NOT reached.
             throw new ParserException(input,
                             "Document end marker not found (aka c-document-end). " +
@@ -193,51 +324,53 @@ public final class MiniYamlParser {
         //               1=indent 2=seq 3=map key         4=literal (optional)
         Pattern.compile("^(\\s*)(-)\\s*([^\\s:]+)\\s*:\\s*(.*)$");
 
-    private void parseIntoContainer(Input input, Block block, String indent)
+    private void parseIntoContainer(Input input, Block block, int indent)
                  throws IOException, ParserException {
         try {
-            String line;
+            StringBuilder line;
             while ((line = input.readLine()) != null) {
-                if ("...".equals(line)) {
+                if (isMarker(line, "...")) {
                     // end of document marker reached.
                     input.unreadLine(line);
                     return;
                 }
 
-                Matcher m = RE_SEQ_AND_KEY.matcher(line);
+                // Note: the matchers are shared with the nested calls and only valid
+                // till the next line is read.
+                Matcher m = mSeqAndKey.reset(line);
                 if (!m.matches()) {
-                    m = RE_SEQ_OR_KEY.matcher(line);
+                    m = mSeqOrKey.reset(line);
                 }
                 if (m.matches()) {
                     assert m.groupCount() == 4;
-                    String i2 = m.group(1);
-                    if (i2.length() > indent.length()) {
+                    int i2 = m.end(1);
+                    if (i2 > indent) {
                         throw new ParserException(input,
                                     String.format("Mismatched map indentation, expected %d but was %d'",
-                                                indent.length(), i2.length()));
-                    } else if (i2.length() < indent.length()) {
+                                                indent, i2));
+                    } else if (i2 < indent) {
                         input.unreadLine(line);
                         return;
                     }
 
-                    Block c = new Block();
+                    Block c = new Block().setLine(input.getLineCount());
 
                     boolean parseLiteral = true;
-                    if ("-".equals(m.group(2))) {
+                    if (m.start(2) >= 0) {
                         // group 2 is the - for a pure sequence item
                         block.appendToSequence(c);
 
-                        if (m.group(3) != null) {
+                        if (m.start(3) >= 0) {
                             // This is a combo sequence item + new key:value *inside* the
                             // new sequence. We simulate this by handling this as a new
                             // sequence item and then change the line by removing
                             // the - marker and recursively iterate to handle a key:value item.
-                            line = line.substring(0, i2.length()) + ' ' + line.substring(i2.length() + 1);
+                            line.setCharAt(i2, ' ');
                             input.unreadLine(line);
                             parseLiteral = false;
                         }
 
-                    } else if (m.group(3) != null) {
+                    } else if (m.start(3) >= 0) {
                         // group 3 is the key for a key:value item
                         block.setKeyValue(m.group(3), c);
 
@@ -247,20 +380,29 @@ public final class MiniYamlParser {
                     }
 
                     if (parseLiteral) {
-                        String value = m.group(4).trim();
-                        if ("|".equals(value)) {
+                        // Trim the value in place; only non-empty literals are extracted.
+                        int start = m.start(4);
+                        int end = m.end(4);
+                        while (start < end && line.charAt(start) <= ' ') {
+                            start++;
+                        }
+                        while (end > start && line.charAt(end - 1) <= ' ') {
+                            end--;
+                        }
+                        if (end - start == 1 && line.charAt(start) == '|') {
                             // Parse literal string. The multi-line literal stops when
                             // we encounter a potential key:value or sequence item at the
                             // same or outer scope level.
-                            StringBuilder sb = new StringBuilder();
+                            StringBuilder sb = mLiteralBuilder;
+                            sb.setLength(0);
                             while ((line = input.readLine()) != null) {
-                                if ("...".equals(line)) {
+                                if (isMarker(line, "...")) {
                                     // end of document marker reached.
                                     input.unreadLine(line);
                                     break;
                                 }
-                                Matcher m2 = RE_SEQ_OR_KEY.matcher(line);
-                                if (m2.matches() && m2.group(1).length() <= indent.length()) {
+                                Matcher m2 = mSeqOrKey.reset(line);
+                                if (m2.matches() && m2.end(1) <= indent) {
                                     // potential key:value or sequence item found.
                                     input.unreadLine(line);
                                     break;
@@ -271,19 +413,22 @@ public final class MiniYamlParser {
 
                             c.setLiteral(sb.toString());
 
-                        } else if (value.length() > 0) {
-                            c.setLiteral(value);
+                        } else if (end > start) {
+                            c.setLiteral(line.substring(start, end));
                         }
                     }
 
                     if (c.isEmpty()) {
                         line = input.readLine();
                         input.unreadLine(line);
-                        Matcher m2 = RE_INDENT.matcher(line);
+                        Matcher m2 = mIndent.reset(line);
                         if (m2.matches()) {
-                            i2 = m2.group(1);
-                            if (i2.length() > indent.length()) {
+                            i2 = m2.end(1);
+                            if (i2 > indent) {
                                 parseIntoContainer(input, c, i2);
+                                if (mPackNumbers) {
+                                    c.packNumbers();
+                                }
                             }
                         }
                     }
@@ -0,0 +1,403 @@
+/*
+ * Project: MiniYamlParser
+ *
+ * Copyright 2012 ralfoide gmail com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.alfray.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+//-----------------------------------------------
+
+/**
+ * Describes the expected shape of a parsed {@link Block} tree.
+ * <p/>
+ * A schema is built once and can then validate any number of trees, e.g.
+ * <pre>
+ * Schema schema = Schema.mapping()
+ *     .required("format", Schema.number())
+ *     .optional("description", Schema.string())
+ *     .required("items", Schema.sequenceOf(
+ *         Schema.mapping()
+ *             .required("name", Schema.string())
+ *             .optional("dpi", Schema.integer().range(0, 1000))));
+ *
+ * for (Schema.Violation v : schema.validate(block)) { ... }
+ * </pre>
+ * Validation walks the tree once and reports all violations, each with the line of the
+ * offending block. Nothing is allocated for blocks that match the schema, except for number
+ * literals which aren't plain decimals of up to 15 digits (e.g. hexadecimal or "NaN"): these
+ * are checked with {@link Double#parseDouble}. Violation messages are only formatted when
+ * requested.
+ * <p/>
+ * A schema must not be modified once it is used to validate; it is then safe to share
+ * between threads.
+ */
+public final class Schema {
+
+    private enum Kind {
+        ANY("any"),
+        STRING("literal"),
+        INTEGER("integer literal"),
+        NUMBER("number literal"),
+        MAPPING("mapping"),
+        SEQUENCE("sequence");
+
+        private final String mName;
+
+        private Kind(String name) {
+            mName = name;
+        }
+    }
+
+    private static class Field {
+        private final String mKey;
+        private final Schema mSchema;
+        private final boolean mRequired;
+
+        public Field(String key, Schema schema, boolean required) {
+            mKey = key;
+            mSchema = schema;
+            mRequired = required;
+        }
+    }
+
+    private final Kind mKind;
+    private final Schema mElement;
+    private final List<Field> mFields;
+    private double mMin = Double.NEGATIVE_INFINITY;
+    private double mMax = Double.POSITIVE_INFINITY;
+
+    private Schema(Kind kind, Schema element) {
+        mKind = kind;
+        mElement = element;
+        mFields = kind == Kind.MAPPING ? new ArrayList<Field>() : null;
+    }
+
+    /** Matches any block, including empty ones. */
+    public static Schema any() {
+        return new Schema(Kind.ANY, null);
+    }
+
+    /** Matches any literal. */
+    public static Schema string() {
+        return new Schema(Kind.STRING, null);
+    }
+
+    /** Matches a literal that {@link Block#getInt()} can parse. */
+    public static Schema integer() {
+        return new Schema(Kind.INTEGER, null);
+    }
+
+    /** Matches a literal that {@link Block#getDouble()} can parse. */
+    public static Schema number() {
+        return new Schema(Kind.NUMBER, null);
+    }
+
+    /** Matches a mapping (or an empty block). Use {@link #required} and {@link #optional} to add keys. */
+    public static Schema mapping() {
+        return new Schema(Kind.MAPPING, null);
+    }
+
+    /** Matches a sequence (or an empty block) where each element matches the given schema. */
+    public static Schema sequenceOf(Schema element) {
+        return new Schema(Kind.SEQUENCE, element);
+    }
+
+    /** Adds a key that must be present in a mapping schema. */
+    public Schema required(String key, Schema schema) {
+        return addField(key, schema, true);
+    }
+
+    /** Adds a key that, if present in a mapping schema, must match the given schema. */
+    public Schema optional(String key, Schema schema) {
+        return addField(key, schema, false);
+    }
+
+    /** Restricts an integer or number schema to the inclusive range [min, max]. */
+    public Schema range(double min, double max) {
+        if (mKind != Kind.INTEGER && mKind != Kind.NUMBER) {
+            throw new IllegalStateException("range() requires an integer or number schema, not " + mKind.mName);
+        }
+        mMin = min;
+        mMax = max;
+        return this;
+    }
+
+    private Schema addField(String key, Schema schema, boolean required) {
+        if (mKind != Kind.MAPPING) {
+            throw new IllegalStateException("Keys can only be added to a mapping schema, not " + mKind.mName);
+        }
+        mFields.add(new Field(key, schema, required));
+        return this;
+    }
+
+    // --- Validation
+
+    /** The reason a {@link Violation} was reported. */
+    public enum Reason {
+        /** A required mapping key is absent. */
+        MISSING_KEY,
+        /** The block is not of the expected type. */
+        WRONG_TYPE,
+        /** A numeric literal is outside of the expected range. */
+        OUT_OF_RANGE
+    }
+
+    /** A schema violation found by {@link Schema#validate}. */
+    public static final class Violation {
+        private final Reason mReason;
+        private final String mKey;
+        private final Schema mSchema;
+        private final Block mBlock;
+        private final int mLine;
+
+        Violation(Reason reason, String key, Schema schema, Block block) {
+            mReason = reason;
+            mKey = key;
+            mSchema = schema;
+            mBlock = block;
+            mLine = block.getLine();
+        }
+
+        public Reason getReason() {
+            return mReason;
+        }
+
+        /** Returns the mapping key of the offending block, or null if it isn't a mapping value. */
+        public String getKey() {
+            return mKey;
+        }
+
+        /** Returns the document line of the offending block, or -1 if unknown. */
+        public int getLine() {
+            return mLine;
+        }
+
+        public String getMessage() {
+            switch (mReason) {
+            case MISSING_KEY:
+                return String.format("Missing required key '%s'", mKey);
+            case WRONG_TYPE:
+                return String.format("%s is of type '%s', expected %s",
+                                describe(), mBlock.getType(), mSchema.mKind.mName);
+            case OUT_OF_RANGE:
+                return String.format("%s is not in range [%s, %s]: %s",
+                                describe(), format(mSchema.mMin), format(mSchema.mMax), mBlock.getString());
+            }
+            return mReason.toString();
+        }
+
+        private String describe() {
+            return mKey == null ? "Value" : "Key '" + mKey + "'";
+        }
+
+        private static String format(double d) {
+            return d == Math.rint(d) && !Double.isInfinite(d) ? Long.toString((long) d) : Double.toString(d);
+        }
+
+        /** Returns the message prefixed by the line, using the same format as {@link ParserException}. */
+        @Override
+        public String toString() {
+            return "[line " + mLine + "] " + getMessage();
+        }
+    }
+
+    /**
+     * Validates the block tree in a single pass.
+     *
+     * @return All violations found, or an empty list if the tree matches.
+     */
+    public List<Violation> validate(Block block) {
+        List<Violation> violations = check(block, null, null);
+        if (violations == null) {
+            return Collections.emptyList();
+        }
+        return violations;
+    }
+
+    private List<Violation> check(Block block, String key, List<Violation> out) {
+        switch (mKind) {
+        case ANY:
+            break;
+
+        case STRING:
+        case INTEGER:
+        case NUMBER:
+            if (!block.isLiteral()) {
+                out = add(out, Reason.WRONG_TYPE, key, block);
+            } else {
+                Reason reason = checkLiteral(block);
+                if (reason != null) {
+                    out = add(out, reason, key, block);
+                }
+            }
+            break;
+
+        case MAPPING:
+            if (block.isMapping() || block.isEmpty()) {
+                for (int i = 0, n = mFields.size(); i < n; i++) {
+                    Field field = mFields.get(i);
+                    Block value = block.isMapping() ? block.getKey(field.mKey) : null;
+                    if (value != null) {
+                        out = field.mSchema.check(value, field.mKey, out);
+                    } else if (field.mRequired) {
+                        out = add(out, new Violation(Reason.MISSING_KEY, field.mKey, this, block));
+                    }
+                }
+            } else {
+                out = add(out, Reason.WRONG_TYPE, key, block);
+            }
+            break;
+
+        case SEQUENCE:
+            if (block.isPackedSequence()) {
+                // Check the packed values directly; item blocks are only created for violations.
+                for (int i = 0, n = block.getSequenceSize(); i < n; i++) {
+                    Reason reason = mElement.checkPacked(block, i);
+                    if (reason != null) {
+                        out = mElement.add(out, reason, null, block.getSequenceItem(i));
+                    }
+                }
+            } else if (block.isSequence()) {
+                for (int i = 0, n = block.getSequenceSize(); i < n; i++) {
+                    out = mElement.check(block.getSequenceItem(i), null, out);
+                }
+            } else if (!block.isEmpty()) {
+                out = add(out, Reason.WRONG_TYPE, key, block);
+            }
+            break;
+        }
+        return out;
+    }
+
+    /** Returns the reason a literal block does not match this schema, or null if it matches. */
+    private Reason checkLiteral(Block block) {
+        if (mKind == Kind.INTEGER || mKind == Kind.NUMBER) {
+            double value;
+            try {
+                value = mKind == Kind.INTEGER ? block.getInt() : parseDouble(block.getString());
+            } catch (NumberFormatException e) {
+                return Reason.WRONG_TYPE;
+            }
+            if (value < mMin || value > mMax) {
+                return Reason.OUT_OF_RANGE;
+            }
+        }
+        return null;
+    }
+
+    private static final double[] POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    /**
+     * Same as {@link Double#parseDouble} but without allocating for plain decimal literals
+     * such as -12.5 or 1.5e3 whose digits fit in a double mantissa and whose power of ten is
+     * within 1e22. These are exactly rounded using a single multiplication or division.
+     */
+    static double parseDouble(String s) throws NumberFormatException {
+        int n = s.length();
+        int i = 0;
+        boolean negative = false;
+        if (i < n && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            negative = s.charAt(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int exp10 = 0;
+        int digits = 0;
+        boolean dot = false;
+        for (; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (mantissa >= (1L << 53) / 10) {
+                    return Double.parseDouble(s);
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (dot) {
+                    exp10--;
+                }
+            } else if (c == '.' && !dot) {
+                dot = true;
+            } else {
+                break;
+            }
+        }
+        if (digits == 0) {
+            return Double.parseDouble(s);
+        }
+
+        if (i < n && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+            i++;
+            boolean negativeExp = false;
+            if (i < n && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+                negativeExp = s.charAt(i) == '-';
+                i++;
+            }
+            int exp = 0;
+            int expDigits = 0;
+            for (; i < n && exp < 1000; i++, expDigits++) {
+                char c = s.charAt(i);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                exp = exp * 10 + (c - '0');
+            }
+            if (expDigits == 0) {
+                return Double.parseDouble(s);
+            }
+            exp10 += negativeExp ? -exp : exp;
+        }
+
+        if (i < n || exp10 < -22 || exp10 > 22) {
+            return Double.parseDouble(s);
+        }
+        double value = exp10 < 0 ? mantissa / POW10[-exp10] : mantissa * POW10[exp10];
+        return negative ? -value : value;
+    }
+
+    /** Returns the reason a packed sequence value does not match this schema, or null if it matches. */
+    private Reason checkPacked(Block sequence, int index) {
+        if (mKind == Kind.MAPPING || mKind == Kind.SEQUENCE) {
+            return Reason.WRONG_TYPE;
+        } else if (mKind == Kind.INTEGER && !sequence.isPackedInt(index)) {
+            return Reason.WRONG_TYPE;
+        } else if (mKind == Kind.INTEGER || mKind == Kind.NUMBER) {
+            double value = sequence.getPackedDouble(index);
+            if (value < mMin || value > mMax) {
+                return Reason.OUT_OF_RANGE;
+            }
+        }
+        return null;
+    }
+
+    private List<Violation> add(List<Violation> out, Reason reason, String key, Block block) {
+        return add(out, new Violation(reason, key, this, block));
+    }
+
+    private static List<Violation> add(List<Violation> out, Violation violation) {
+        if (out == null) {
+            out = new ArrayList<Violation>();
+        }
+        out.add(violation);
+        return out;
+    }
+}
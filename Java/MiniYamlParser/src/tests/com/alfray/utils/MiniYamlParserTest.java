@@ -21,6 +21,8 @@ package com.alfray.utils;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -147,6 +149,225 @@ public final class MiniYamlParserTest {
              "key5='value 5'}", r.toString());
     }
 
+    @Test
+    public void testMerge() throws IOException, ParserException {
+        Block base = parseString(
+            "---\n" +
+            "name: base\n" +
+            "list:\n" +
+            "  - a\n" +
+            "  - b\n" +
+            "nested:\n" +
+            "  key1: value 1\n" +
+            "  key2: value 2\n" +
+            "untouched:\n" +
+            "  key3: value 3\n" +
+            "...\n");
+        Block overlay = parseString(
+            "---\n" +
+            "name: overlay\n" +
+            "list:\n" +
+            "  - c\n" +
+            "nested:\n" +
+            "  key2: value 2b\n" +
+            "added: new\n" +
+            "...\n");
+
+        Block r = base.merge(overlay, Block.SequenceMerge.REPLACE);
+        assertEquals(
+            "{added='new', " +
+             "list=['c'], " +
+             "name='overlay', " +
+             "nested={key1='value 1', key2='value 2b'}, " +
+             "untouched={key3='value 3'}}", r.toString());
+        assertSame(base.getKey("untouched"), r.getKey("untouched"));
+        assertSame(base.getKey("nested").getKey("key1"), r.getKey("nested").getKey("key1"));
+        assertSame(overlay.getKey("list"), r.getKey("list"));
+
+        r = base.merge(overlay, Block.SequenceMerge.APPEND);
+        assertEquals("['a', 'b', 'c']", r.getKey("list").toString());
+
+        // The inputs are left unchanged.
+        assertEquals(
+            "{list=['a', 'b'], " +
+             "name='base', " +
+             "nested={key1='value 1', key2='value 2'}, " +
+             "untouched={key3='value 3'}}", base.toString());
+        assertSame(base, base.merge(new Block(), Block.SequenceMerge.APPEND));
+
+        // The result shares the overlay's list, which must still be appended to itself.
+        r = base.merge(overlay, Block.SequenceMerge.REPLACE);
+        assertSame(overlay.getKey("list"), r.getKey("list"));
+        assertEquals("['c', 'c']", r.merge(overlay, Block.SequenceMerge.APPEND).getKey("list").toString());
+        assertEquals("['a', 'b', 'a', 'b']", base.merge(base, Block.SequenceMerge.APPEND).getKey("list").toString());
+        assertSame(base, base.merge(base, Block.SequenceMerge.REPLACE));
+
+        // Merged mappings layer the overlay keys on top of the base ones; merging
+        // again adds another layer which must still read as a single sorted mapping.
+        r = base.merge(overlay, Block.SequenceMerge.REPLACE)
+                .merge(parseString("---\nb: 1\nname: last\nnested:\n  key0: value 0\n...\n"),
+                       Block.SequenceMerge.REPLACE);
+        assertEquals(
+            "{added='new', " +
+             "b='1', " +
+             "list=['c'], " +
+             "name='last', " +
+             "nested={key0='value 0', key1='value 1', key2='value 2b'}, " +
+             "untouched={key3='value 3'}}", r.toString());
+        assertEquals(6, r.getMapping().size());
+        assertEquals("[added, b, list, name, nested, untouched]", r.getKeys().toString());
+        assertEquals("value 2b", r.getKey("nested").getKeyString("key2"));
+        assertEquals(null, r.getKey("missing"));
+    }
+
+    @Test
+    public void testSchema() throws IOException, ParserException {
+        Block r = parseString(
+            "---\n" +
+            "format: 1.0\n" +
+            "items:\n" +
+            "  - name: intro\n" +
+            "    dpi: 320\n" +
+            "  - dpi: 2000\n" +
+            "  - name:\n" +
+            "      a: b\n" +
+            "    dpi: high\n" +
+            "...\n");
+
+        Schema schema = Schema.mapping()
+            .required("format", Schema.number())
+            .optional("description", Schema.string())
+            .required("items", Schema.sequenceOf(
+                Schema.mapping()
+                    .required("name", Schema.string())
+                    .optional("dpi", Schema.integer().range(0, 1000))));
+
+        List<Schema.Violation> violations = schema.validate(r);
+        assertEquals(4, violations.size());
+        assertEquals("[line 6] Missing required key 'name'", violations.get(0).toString());
+        assertEquals("[line 6] Key 'dpi' is not in range [0, 1000]: 2000", violations.get(1).toString());
+        assertEquals("[line 7] Key 'name' is of type 'mapping', expected literal", violations.get(2).toString());
+        assertEquals(Schema.Reason.WRONG_TYPE, violations.get(3).getReason());
+        assertEquals(9, violations.get(3).getLine());
+
+        // The same schema can be reused.
+        assertEquals("[line 2] Key 'format' is of type 'literal', expected number literal",
+                     schema.validate(parseString("---\nformat: one\nitems:\n...\n")).get(0).toString());
+
+        // Numbers are checked like Block.getDouble() parses them, whatever their form.
+        for (String number : new String[] { "0.1", "-.5", "1.", "+7", "1.5e3", "1E-22", "1e23",
+                                            "0.30000000000000004", "9007199254740993", "NaN", "1d" }) {
+            assertEquals(number, Double.parseDouble(number), Schema.parseDouble(number), 0);
+        }
+        for (String number : new String[] { "", ".", "-", "1e", "1_0", "0x" }) {
+            try {
+                Schema.parseDouble(number);
+                fail("NumberFormatException expected for " + number);
+            } catch (NumberFormatException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testPackedSequences() throws IOException, ParserException {
+        String yaml =
+            "---\n" +
+            "ints:\n" +
+            "  - 1\n" +
+            "  - -2\n" +
+            "longs:\n" +
+            "  - 1\n" +
+            "  - 10000000000\n" +
+            "doubles:\n" +
+            "  - 0.25\n" +
+            "  - 1.0\n" +
+            "mixed:\n" +
+            "  - 0\n" +
+            "  - 0.5\n" +
+            "  - 1\n" +
+            "scientific:\n" +
+            "  - 0.00001\n" +
+            "  - 0.5\n" +
+            "text:\n" +
+            "  - 1\n" +
+            "  - abc\n" +
+            "...\n";
+        Block r = new MiniYamlParser().setPackNumericSequences(true).parse(new StringReader(yaml));
+
+        assertTrue(r.getKey("ints").isPackedSequence());
+        assertTrue(r.getKey("longs").isPackedSequence());
+        assertTrue(r.getKey("doubles").isPackedSequence());
+        assertTrue(r.getKey("mixed").isPackedSequence());
+        // "0.00001" does not read back as "1.0E-5" so this one is not packed, but can still be extracted.
+        assertFalse(r.getKey("scientific").isPackedSequence());
+        assertFalse(r.getKey("text").isPackedSequence());
+
+        assertArrayEquals(new int[] { 1, -2 }, r.getKey("ints").getIntArray());
+        assertArrayEquals(new long[] { 1, 10000000000L }, r.getKey("longs").getLongArray());
+        assertArrayEquals(new double[] { 0.25, 1.0 }, r.getKey("doubles").getDoubleArray(), 0);
+        assertArrayEquals(new double[] { 1, -2 }, r.getKey("ints").getDoubleArray(), 0);
+        assertArrayEquals(new double[] { 0, 0.5, 1 }, r.getKey("mixed").getDoubleArray(), 0);
+        assertArrayEquals(new double[] { 0.00001, 0.5 }, r.getKey("scientific").getDoubleArray(), 0);
+        assertEquals(-2, r.getKey("ints").getSequence().get(1).getInt());
+
+        // Packing is transparent to the string representation.
+        assertEquals(new MiniYamlParser().parse(new StringReader(yaml)).toString(), r.toString());
+
+        // Packed or not, items which aren't ints fail the same way.
+        Block unpacked = new MiniYamlParser().parse(new StringReader(yaml));
+        assertEquals(getIntArrayError(unpacked.getKey("longs")), getIntArrayError(r.getKey("longs")));
+        assertEquals(getIntArrayError(unpacked.getKey("doubles")), getIntArrayError(r.getKey("doubles")));
+        assertEquals(getIntArrayError(unpacked.getKey("mixed")), getIntArrayError(r.getKey("mixed")));
+        assertEquals("For input string: \"0.25\"", getIntArrayError(r.getKey("doubles")));
+
+        List<Schema.Violation> violations =
+            Schema.mapping().required("ints", Schema.sequenceOf(Schema.integer().range(0, 10)))
+                            .required("doubles", Schema.sequenceOf(Schema.integer()))
+                            .validate(r);
+        assertEquals(3, violations.size());
+        // Items of a packed sequence report the line of the sequence.
+        assertEquals("[line 2] Value is not in range [0, 10]: -2", violations.get(0).toString());
+        assertEquals("[line 8] Value is of type 'literal', expected integer literal", violations.get(1).toString());
+    }
+
+    @Test
+    public void testReuse() throws IOException, ParserException {
+        MiniYamlParser parser = new MiniYamlParser();
+        String yaml = "---\nkey1: value 1\nkey2: |\n  line 1\n  line 2\nkey3:\n  - 0.5\n...\n";
+        String expected = "{key1='value 1', key2='  line 1\n  line 2\n', key3=['0.5']}";
+
+        assertEquals(expected, parser.parse(new StringReader(yaml)).toString());
+        assertEquals(expected, parser.parse(new StringReader(yaml.replace('\n', '\r'))).toString());
+        try {
+            parser.parse(new StringReader("key: no document marker\n"));
+            fail("ParserException expected");
+        } catch (ParserException e) {
+            assertEquals(1, e.getLine());
+        }
+        assertEquals(expected, parser.parse(new StringReader(yaml.replace("\n", "\r\n"))).toString());
+
+        MiniYamlParser threadParser = MiniYamlParser.getThreadParser();
+        threadParser.setPackNumericSequences(true);
+        assertTrue(threadParser.parse(new StringReader(yaml)).getKey("key3").isPackedSequence());
+        assertSame(threadParser, MiniYamlParser.getThreadParser());
+        // Getting the thread parser again resets its options.
+        assertFalse(threadParser.parse(new StringReader(yaml)).getKey("key3").isPackedSequence());
+    }
+
+    private String getIntArrayError(Block block) throws ParserException {
+        try {
+            block.getIntArray();
+        } catch (NumberFormatException e) {
+            return e.getMessage();
+        }
+        fail("NumberFormatException expected");
+        return null;
+    }
+
+    private Block parseString(String yaml) throws IOException, ParserException {
+        return new MiniYamlParser().parse(new StringReader(yaml));
+    }
+
     private Block createParser() throws IOException, ParserException {
         // Uses the caller's thread to get the filename.
         // E.g. if the caller method is "test12", this will load and parse